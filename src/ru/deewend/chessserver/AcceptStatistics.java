@@ -0,0 +1,127 @@
+package ru.deewend.chessserver;
+
+import jdk.jfr.FlightRecorder;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts accepted connections and periodically emits them as the
+ * AcceptStatistics JFR event (the period is set in chessserver.jfc).
+ * <p>
+ * The kernel doesn't tell how long a particular connection waited in the
+ * accept queue, so the wait is estimated with Little's law from the current
+ * queue length (which Linux exposes in /proc/net/tcp as rx_queue of the
+ * listening sockets) and the accept rate.
+ */
+public class AcceptStatistics {
+    private static final String[] PROC_FILES = {"/proc/net/tcp", "/proc/net/tcp6"};
+    private static final String LISTEN_STATE = "0A";
+
+    private final ChessServer chessServer;
+    private final int[] ports;
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    // only accessed by the JFR periodic task thread
+    private long lastAccepted;
+    private long lastRejected;
+    private long lastTimestamp = System.nanoTime();
+
+    public AcceptStatistics(ChessServer chessServer, int... ports) {
+        this.chessServer = chessServer;
+        this.ports = ports;
+    }
+
+    public void register() {
+        try {
+            if (!FlightRecorder.isAvailable()) {
+                Helper.log("JFR is not available, accept statistics won't be recorded");
+
+                return;
+            }
+
+            FlightRecorder.addPeriodicEvent(
+                    ChessEvents.AcceptStatisticsEvent.class, this::emit);
+        } catch (Throwable t) {
+            Helper.log("Failed to register accept statistics (" + t + ")");
+        }
+    }
+
+    public void onAccepted() {
+        accepted.increment();
+    }
+
+    public void onRejected() {
+        rejected.increment();
+    }
+
+    private void emit() {
+        ChessEvents.AcceptStatisticsEvent event = new ChessEvents.AcceptStatisticsEvent();
+        if (!event.shouldCommit()) return;
+
+        long now = System.nanoTime();
+        long accepted = this.accepted.sum();
+        long rejected = this.rejected.sum();
+        long acceptedDelta = accepted - lastAccepted;
+        double elapsedSeconds = (now - lastTimestamp) / 1_000_000_000D;
+        lastAccepted = accepted;
+        lastTimestamp = now;
+
+        event.acceptedConnections = acceptedDelta;
+        event.rejectedConnections = rejected - lastRejected;
+        lastRejected = rejected;
+        event.acceptRate = (elapsedSeconds > 0 ? acceptedDelta / elapsedSeconds : 0);
+        event.onlinePlayerCount = chessServer.getOnlinePlayerCount();
+        event.backlogLength = readBacklogLength();
+        if (event.backlogLength > 0) {
+            // if nothing was accepted during the period, the queue has been
+            // stuck for at least the whole period
+            event.estimatedBacklogWait = (event.acceptRate > 0 ?
+                    (long) (event.backlogLength * 1000 / event.acceptRate) :
+                    (long) (elapsedSeconds * 1000));
+        }
+        event.commit();
+    }
+
+    private int readBacklogLength() {
+        int total = 0;
+        boolean found = false;
+        for (String file : PROC_FILES) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                reader.readLine(); // the header
+
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // sl local_address rem_address st tx_queue:rx_queue ...
+                    String[] columns = line.trim().split("\\s+");
+                    if (columns.length < 5 || !columns[3].equals(LISTEN_STATE)) continue;
+
+                    String localAddress = columns[1];
+                    int port = Integer.parseInt(localAddress
+                            .substring(localAddress.lastIndexOf(':') + 1), 16);
+                    if (!isOurPort(port)) continue;
+
+                    String queues = columns[4];
+                    // for listening sockets rx_queue is the current accept queue length
+                    total += Integer.parseInt(queues
+                            .substring(queues.indexOf(':') + 1), 16);
+                    found = true;
+                }
+            } catch (IOException | RuntimeException ignored) {
+                // not Linux, or the format is unexpected
+            }
+        }
+
+        return (found ? total : -1);
+    }
+
+    private boolean isOurPort(int port) {
+        for (int ourPort : ports) {
+            if (ourPort == port) return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,155 @@
+package ru.deewend.chessserver;
+
+import jdk.jfr.*;
+
+/**
+ * JDK Flight Recorder events describing the connection, move and tick
+ * lifecycles. They are cheap when disabled, so they are always compiled in;
+ * see chessserver.jfc for the recommended continuous recording settings.
+ * <p>
+ * Every room-related event carries the invitation code, so it can be
+ * correlated with GC pauses, lock contention and socket stalls reported by
+ * the JVM itself.
+ */
+public class ChessEvents {
+    private static final String CATEGORY = "McLordChess";
+
+    private ChessEvents() {
+    }
+
+    @Name("ru.deewend.chessserver.Handshake")
+    @Label("WebSocket Handshake")
+    @Description("Reading the HTTP upgrade request and writing the response")
+    @Category({CATEGORY, "Connection"})
+    @StackTrace(false)
+    public static class HandshakeEvent extends Event {
+        @Label("Remote Address")
+        public String remoteAddress;
+
+        @Label("Succeeded")
+        public boolean succeeded;
+    }
+
+    @Name("ru.deewend.chessserver.FrameReceived")
+    @Label("Frame Received")
+    @Description("Reading a WebSocket frame, starting when its first byte has arrived")
+    @Category({CATEGORY, "Connection"})
+    @StackTrace(false)
+    public static class FrameReceivedEvent extends Event {
+        @Label("Remote Address")
+        public String remoteAddress;
+
+        @Label("Invitation Code")
+        public String invitationCode;
+
+        @Label("Payload Length")
+        @DataAmount
+        public int payloadLength;
+    }
+
+    @Name("ru.deewend.chessserver.FrameSent")
+    @Label("Frame Sent")
+    @Description("Writing and flushing a WebSocket frame")
+    @Category({CATEGORY, "Connection"})
+    @StackTrace(false)
+    public static class FrameSentEvent extends Event {
+        @Label("Remote Address")
+        public String remoteAddress;
+
+        @Label("Invitation Code")
+        public String invitationCode;
+
+        @Label("Payload Length")
+        @DataAmount
+        public int payloadLength;
+    }
+
+    @Name("ru.deewend.chessserver.Move")
+    @Label("Move")
+    @Description("GameRoom.checkAndDoMove, excluding the time spent waiting for the room lock")
+    @Category({CATEGORY, "Game"})
+    @StackTrace(false)
+    public static class MoveEvent extends Event {
+        @Label("Invitation Code")
+        public String invitationCode;
+
+        @Label("SAN")
+        public String san;
+
+        @Label("Validation Time")
+        @Timespan(Timespan.NANOSECONDS)
+        public long validationTime;
+
+        @Label("Relay Time")
+        @Timespan(Timespan.NANOSECONDS)
+        public long relayTime;
+
+        @Label("Game Finished")
+        public boolean finished;
+    }
+
+    @Name("ru.deewend.chessserver.ConnectSecond")
+    @Label("Opponent Connection")
+    @Description("GameRoom.connectSecond, including the \"ok_starting\" messages")
+    @Category({CATEGORY, "Game"})
+    @StackTrace(false)
+    public static class ConnectSecondEvent extends Event {
+        @Label("Invitation Code")
+        public String invitationCode;
+
+        @Label("Succeeded")
+        public boolean succeeded;
+    }
+
+    @Name("ru.deewend.chessserver.WatchdogTick")
+    @Label("Watchdog Tick")
+    @Category({CATEGORY, "Watchdog"})
+    @StackTrace(false)
+    public static class WatchdogTickEvent extends Event {
+        @Label("Rooms Visited")
+        public int roomsVisited;
+
+        @Label("Rooms Removed")
+        public int roomsRemoved;
+
+        @Label("Overrun")
+        @Description("The tick took longer than the tick period")
+        public boolean overrun;
+    }
+
+    @Name("ru.deewend.chessserver.AcceptStatistics")
+    @Label("Accept Statistics")
+    @Description("Connections accepted since the previous event of this type")
+    @Category({CATEGORY, "Connection"})
+    @StackTrace(false)
+    public static class AcceptStatisticsEvent extends Event {
+        @Label("Accepted Connections")
+        public long acceptedConnections;
+
+        @Label("Rejected Connections")
+        @Description("Connections closed right after accepting because of the overload")
+        public long rejectedConnections;
+
+        @Label("Accept Rate")
+        @Frequency
+        public double acceptRate;
+
+        @Label("Online Player Count")
+        public int onlinePlayerCount;
+
+        @Label("Backlog Length")
+        @Description("Connections waiting in the kernel accept queues, -1 if unknown")
+        public int backlogLength;
+
+        @Label("Estimated Backlog Wait")
+        @Timespan(Timespan.MILLISECONDS)
+        public long estimatedBacklogWait;
+    }
+
+    @Name("ru.deewend.chessserver.GameRoomsLockWait")
+    @Label("Game Rooms Lock Wait")
+    @Description("Time spent waiting for the lock guarding the game rooms map")
+    @Category({CATEGORY, "Locking"})
+    public static class GameRoomsLockWaitEvent extends Event {
+    }
+}
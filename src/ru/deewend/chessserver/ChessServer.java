@@ -1,10 +1,16 @@
 package ru.deewend.chessserver;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
 import java.net.Socket;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ChessServer {
     // do not change these fields
@@ -18,13 +24,22 @@ public class ChessServer {
     public static final int PLAYER_TIME_TICKS;
     public static final int MAX_HOST_WAITING_TIME_S;
     public static final int MAX_HOST_WAITING_TIME_TICKS;
+    public static final int HANDSHAKE_TIMEOUT_S;
+    public static final int ACCEPTOR_THREADS;
+    public static final boolean REUSE_PORT;
+    public static final int BACKLOG;
     public static final byte ACTION_ACCEPT = 0;
     public static final byte ACTION_AND_CLOSE_LATER = 1;
     public static final byte ACTION_CLOSE_NOW = 2;
 
     private final Random random = new SecureRandom();
-    private volatile int onlinePlayerCount;
+    private final AtomicInteger onlinePlayerCount = new AtomicInteger();
+    private final Heartbeat heartbeat = new Heartbeat();
+    private final AcceptStatistics acceptStatistics =
+            new AcceptStatistics(this, SERVER_PORT, TlsSupport.TLS_PORT);
     private final Map<String, GameRoom> gameRooms = new HashMap<>();
+    // used instead of the monitor since we perform socket I/O while holding it
+    private final Lock gameRoomsLock = new ReentrantLock();
 
     static {
         Helper.log("Initializing...");
@@ -40,6 +55,19 @@ public class ChessServer {
                 System.getProperty("chessserver.playerTimeSeconds", "1800"));
         MAX_HOST_WAITING_TIME_S = Integer.parseInt(
                 System.getProperty("chessserver.maxHostWaitingTimeSeconds", "900"));
+        HANDSHAKE_TIMEOUT_S = Integer.parseInt(
+                System.getProperty("chessserver.handshakeTimeoutSeconds", "10"));
+        // opt-in: with SO_REUSEPORT the kernel would silently split the players
+        // between this process and any other instance listening on the same port
+        REUSE_PORT = "true".equalsIgnoreCase(
+                System.getProperty("chessserver.reusePort"));
+        // without SO_REUSEPORT the acceptors share a single socket, and the JDK
+        // serializes accept() calls on it, so extra acceptors only help the
+        // post-accept work and are not worth it by default
+        ACCEPTOR_THREADS = Math.max(1, Integer.parseInt(
+                System.getProperty("chessserver.acceptorThreads", (REUSE_PORT ? "2" : "1"))));
+        BACKLOG = Integer.parseInt(
+                System.getProperty("chessserver.backlog", "1024"));
 
         PLAYER_TIME_TICKS = PLAYER_TIME_S * TICK_RATE_HZ;
         MAX_HOST_WAITING_TIME_TICKS = MAX_HOST_WAITING_TIME_S * TICK_RATE_HZ;
@@ -60,9 +88,17 @@ public class ChessServer {
                 try {
                     Thread.sleep(MAX_SLEEP_TIME_MS);
                     while (true) {
+                        ChessEvents.WatchdogTickEvent event =
+                                new ChessEvents.WatchdogTickEvent();
+                        event.begin();
                         long started = System.currentTimeMillis();
-                        tick();
+                        tick(event);
                         long delta = System.currentTimeMillis() - started;
+                        event.end();
+                        if (event.shouldCommit()) {
+                            event.overrun = (delta > MAX_SLEEP_TIME_MS);
+                            event.commit();
+                        }
                         if (delta < MAX_SLEEP_TIME_MS) {
                             Thread.sleep(MAX_SLEEP_TIME_MS - delta);
                         } else {
@@ -81,11 +117,11 @@ public class ChessServer {
                 }
             }
 
-            @SuppressWarnings("SynchronizationOnLocalVariableOrMethodParameter")
-            private void tick() {
+            private void tick(ChessEvents.WatchdogTickEvent event) {
                 accessGameRooms(gameRooms -> {
                     if (gameRooms.isEmpty()) return true;
 
+                    event.roomsVisited = gameRooms.size();
                     for (Map.Entry<String, GameRoom> entry : gameRooms.entrySet()) {
                         GameRoom gameRoom = entry.getValue();
 
@@ -120,7 +156,8 @@ public class ChessServer {
                             continue; // the game will be terminated by their own threads
                         }
 
-                        synchronized (gameRoom) {
+                        gameRoom.getLock().lock();
+                        try {
                             if (gameRoom.getWhoMakesAMove() == gameRoom.getHostPlayerHandler()) {
                                 gameRoom.decrementHostPlayerRemainingTime();
                             } else {
@@ -160,9 +197,12 @@ public class ChessServer {
                                 gameRoom.sendAll(message);
                                 gameRoom.getHostPlayerHandler().close();
                             }
+                        } finally {
+                            gameRoom.getLock().unlock();
                         }
                     }
                     if (!entriesToRemove.isEmpty()) {
+                        event.roomsRemoved = entriesToRemove.size();
                         for (String key : entriesToRemove) { // key = invitationCode
                             gameRooms.remove(key);
                         }
@@ -174,39 +214,141 @@ public class ChessServer {
             }
         }));
 
-        ServerSocket listeningSocket = new ServerSocket(SERVER_PORT);
-        Helper.log("Completed. The server is listening on port " + SERVER_PORT);
+        if (Heartbeat.isEnabled()) {
+            Helper.newThread("Heartbeat", heartbeat);
+            Helper.newThread("Heartbeat Pinger", heartbeat::runPinger);
+        }
+
+        if (TlsSupport.isEnabled()) TlsSupport.init();
+        List<ServerSocket> tlsListeningSockets = Collections.emptyList();
+        if (TlsSupport.isEnabled() && TlsSupport.TLS_PORT != SERVER_PORT) {
+            tlsListeningSockets = openListeningSockets(TlsSupport.TLS_PORT);
+        }
+        List<ServerSocket> listeningSockets = openListeningSockets(SERVER_PORT);
+        boolean tls = (TlsSupport.TLS_PORT == SERVER_PORT);
+        acceptStatistics.register();
+
+        if (!tlsListeningSockets.isEmpty()) {
+            startAcceptors("TLS Acceptor", tlsListeningSockets, 0, true);
+            Helper.log("Accepting wss:// connections on port " + TlsSupport.TLS_PORT);
+        }
+        startAcceptors("Acceptor", listeningSockets, 1, tls);
+        Helper.logf("Completed. The server is listening on port %d (acceptors=%d, " +
+                "listeningSockets=%d, backlog=%d)", SERVER_PORT, ACCEPTOR_THREADS,
+                listeningSockets.size(), BACKLOG);
+        if (ACCEPTOR_THREADS > 1 && listeningSockets.size() == 1) {
+            Helper.log("Note: the acceptors share a single listening socket, so they " +
+                    "don't accept in parallel (use -Dchessserver.reusePort=true on Linux)");
+        }
+
+        acceptLoop(listeningSockets.get(0), tls); // the current thread is the acceptor #0
+    }
+
+    private List<ServerSocket> openListeningSockets(int port) throws IOException {
+        List<ServerSocket> listeningSockets = new ArrayList<>();
+        boolean reusePort = (REUSE_PORT && ACCEPTOR_THREADS > 1);
+        if (reusePort) {
+            // fails loudly if another instance (a stale or a double started one)
+            // is already listening, instead of sharing the port with it
+            try (ServerSocket probe = new ServerSocket()) {
+                probe.bind(new InetSocketAddress(port));
+            }
+        }
+        do {
+            // TLS connections are accepted as plain ones as well, see TlsSupport
+            ServerSocket listeningSocket = new ServerSocket();
+            if (reusePort) {
+                // with SO_REUSEPORT (Linux 3.9+) each acceptor gets its own socket and
+                // the kernel spreads incoming connections between their queues,
+                // otherwise the acceptors share a single socket
+                if (listeningSocket.supportedOptions()
+                        .contains(StandardSocketOptions.SO_REUSEPORT)
+                ) {
+                    listeningSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                } else {
+                    reusePort = false;
+                }
+            }
+            listeningSocket.bind(new InetSocketAddress(port), BACKLOG);
+            listeningSockets.add(listeningSocket);
+        } while (reusePort && listeningSockets.size() < ACCEPTOR_THREADS);
+
+        return listeningSockets;
+    }
+
+    private void startAcceptors(
+            String name, List<ServerSocket> listeningSockets, int from, boolean tls
+    ) {
+        for (int i = from; i < ACCEPTOR_THREADS; i++) {
+            ServerSocket listeningSocket = listeningSockets.get(i % listeningSockets.size());
+            String threadName = name + " #" + i;
+            Helper.newThread(threadName, () -> {
+                try {
+                    acceptLoop(listeningSocket, tls);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    System.err.println("The " + threadName + " thread has died, " +
+                            "the server will be terminated");
+
+                    System.exit(-1);
+                }
+            });
+        }
+    }
 
+    @SuppressWarnings("InfiniteLoopStatement")
+    private void acceptLoop(ServerSocket listeningSocket, boolean tls) throws IOException {
+        // this path is kept as short as possible (socket options are set by the
+        // handler itself), so that the acceptors drain the backlog quickly
         while (true) {
-            Socket socket = listeningSocket.accept();
-            socket.setTcpNoDelay(true);
-            socket.setSoTimeout(PLAYER_TIME_S * 1000 + (5 * 60 * 1000)); // adding 5 minutes
+            Socket rawSocket = listeningSocket.accept();
+            acceptStatistics.onAccepted();
 
-            byte action;
-            synchronized (this) {
-                int onlinePlayerCount = ++this.onlinePlayerCount;
-                if (onlinePlayerCount <= MAX_ONLINE_PLAYER_COUNT)
-                    action = ACTION_ACCEPT;
-                else if (onlinePlayerCount <= MAX_ONLINE_PLAYER_COUNT_SOFT_KICK)
-                    action = ACTION_AND_CLOSE_LATER;
-                else
-                    action = ACTION_CLOSE_NOW;
+            Socket socket;
+            try {
+                // no I/O here, the TLS handshake is done by the handler
+                socket = (tls ? TlsSupport.wrap(rawSocket) : rawSocket);
+            } catch (IOException e) {
+                try {
+                    rawSocket.close();
+                } catch (IOException ignored) {}
+
+                continue;
             }
 
+            byte action;
+            int onlinePlayerCount = this.onlinePlayerCount.incrementAndGet();
+            if (onlinePlayerCount <= MAX_ONLINE_PLAYER_COUNT)
+                action = ACTION_ACCEPT;
+            else if (onlinePlayerCount <= MAX_ONLINE_PLAYER_COUNT_SOFT_KICK)
+                action = ACTION_AND_CLOSE_LATER;
+            else
+                action = ACTION_CLOSE_NOW;
+
             ClientHandler handler;
             if (action == ACTION_ACCEPT) {
-                handler = new ClientHandler(this, socket);
+                handler = new ClientHandler(this, rawSocket, socket);
             } else if (action == ACTION_AND_CLOSE_LATER) {
-                handler = new ClientHandler(this, socket, true);
+                handler = new ClientHandler(this, rawSocket, socket, true);
             } else {
                 try {
-                    socket.close();
+                    rawSocket.close();
                 } catch (IOException ignored) {}
+                acceptStatistics.onRejected();
+                decrementOnlinePlayerCount();
 
                 continue;
             }
 
-            Helper.newThread("Client Handler", handler);
+            try {
+                Helper.newThread("Client Handler", handler);
+            } catch (RejectedExecutionException e) {
+                // the bounded executor is full, the handler won't decrement the counter
+                handler.close();
+                acceptStatistics.onRejected();
+                decrementOnlinePlayerCount();
+            }
         }
     }
 
@@ -214,21 +356,29 @@ public class ChessServer {
         return random;
     }
 
+    public Heartbeat getHeartbeat() {
+        return heartbeat;
+    }
+
     public int getOnlinePlayerCount() {
-        return onlinePlayerCount;
+        return onlinePlayerCount.get();
     }
 
-    public synchronized void decrementOnlinePlayerCount() {
-        onlinePlayerCount--;
+    public void decrementOnlinePlayerCount() {
+        onlinePlayerCount.decrementAndGet();
     }
 
     public boolean accessGameRooms(Helper.Providable<Map<String, GameRoom>> providable) {
-        synchronized (gameRooms) {
-            try {
-                return providable.provide(gameRooms);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
+        ChessEvents.GameRoomsLockWaitEvent event = new ChessEvents.GameRoomsLockWaitEvent();
+        event.begin();
+        gameRoomsLock.lock();
+        event.commit(); // ends the event and applies the threshold
+        try {
+            return providable.provide(gameRooms);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            gameRoomsLock.unlock();
         }
     }
 }
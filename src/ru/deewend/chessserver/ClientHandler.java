@@ -8,26 +8,43 @@ import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.Base64;
 import java.util.Scanner;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class ClientHandler implements Runnable {
+    private static final int PONG = 138; // FIN + opcode 0xA
+    private static final byte[] PING_FRAME = {(byte) 137, 0}; // FIN + opcode 0x9, no payload
+
     private final ChessServer chessServer;
+    // the TCP connection; equals to socket unless TLS is layered over it
+    private final Socket rawSocket;
     private final Socket socket;
     private DataInputStream inputStream;
     private DataOutputStream outputStream;
     private final boolean closeBecauseOfOverload;
     private boolean host;
     private GameRoom gameRoom;
-
-    public ClientHandler(ChessServer chessServer, Socket socket) {
-        this(chessServer, socket, false);
+    // guards outputStream, since the Watchdog, the Heartbeat and the opponent's
+    // handler write to it as well
+    private final Lock writeLock = new ReentrantLock();
+    private volatile long lastHeardNanos;
+    private volatile long writeStartedNanos;
+    // set by the Heartbeat, the resulting "Socket closed" isn't worth a stack trace
+    private volatile boolean reaped;
+    private int heartbeatSlot = -1;
+
+    public ClientHandler(ChessServer chessServer, Socket rawSocket, Socket socket) {
+        this(chessServer, rawSocket, socket, false);
     }
 
     public ClientHandler(
-            ChessServer chessServer, Socket socket, boolean closeBecauseOfOverload
+            ChessServer chessServer, Socket rawSocket, Socket socket,
+            boolean closeBecauseOfOverload
     ) {
         this.chessServer = chessServer;
+        this.rawSocket = rawSocket;
         this.socket = socket;
         this.closeBecauseOfOverload = closeBecauseOfOverload;
     }
@@ -35,17 +52,26 @@ public class ClientHandler implements Runnable {
     @Override
     public void run() {
         Throwable t = null;
-        try (Socket ignored = this.socket) {
+        // for TLS, the graceful close (with close_notify) goes first
+        try (Socket ignored0 = this.rawSocket; Socket ignored1 = this.socket) {
+            socket.setTcpNoDelay(true);
+            // the Heartbeat starts watching the connection only after the upgrade,
+            // so a peer dying during the TLS/HTTP handshake is caught by this
+            socket.setSoTimeout(ChessServer.HANDSHAKE_TIMEOUT_S * 1000);
+
             run0();
         } catch (Throwable th) {
             t = th;
         } finally {
-            Helper.logf("A player (%s) disconnected!", socket.toString());
-            if (t != null) {
-                Helper.logf("... but it happened due to an error (%s)", socket.toString());
-                t.printStackTrace();
+            if (!reaped) { // otherwise the Heartbeat has already logged the reason
+                Helper.logf("A player (%s) disconnected!", socket.toString());
+                if (t != null) {
+                    Helper.logf("... but it happened due to an error (%s)", socket.toString());
+                    t.printStackTrace();
+                }
             }
             chessServer.decrementOnlinePlayerCount();
+            if (heartbeatSlot != -1) chessServer.getHeartbeat().unregister(this, heartbeatSlot);
 
             if (gameRoom != null) {
                 ClientHandler handler;
@@ -65,12 +91,15 @@ public class ClientHandler implements Runnable {
         }
     }
 
-    @SuppressWarnings("SynchronizeOnNonFinalField")
     private void run0() throws Throwable {
         if (!websocketInit()) return;
+        // adding 5 minutes
+        socket.setSoTimeout(ChessServer.PLAYER_TIME_S * 1000 + (5 * 60 * 1000));
         if (closeBecauseOfOverload) {
             sendMessage("disconnect:overloaded"); return;
         }
+        lastHeardNanos = System.nanoTime();
+        heartbeatSlot = chessServer.getHeartbeat().register(this);
 
         String[] initialMessage = receiveMessage();
         if (!validateInitialMessage(initialMessage)) {
@@ -142,12 +171,15 @@ public class ClientHandler implements Runnable {
             }
 
             if (gameMessage[0].equals("resign")) {
-                synchronized (gameRoom) {
+                gameRoom.getLock().lock();
+                try {
                     Helper.sendMessageIgnoreErrors(gameRoom.getOpponentPlayerHandler(),
                             "disconnect:opponent_resigned");
                     gameRoom.getOpponentPlayerHandler().close();
 
                     sendMessage("disconnect:you_resigned");
+                } finally {
+                    gameRoom.getLock().unlock();
                 }
 
                 return;
@@ -189,48 +221,101 @@ public class ClientHandler implements Runnable {
                     "message is too long for this implementation");
         }
 
-        outputStream.write(Helper.constructCachedPacket(stream -> {
-            stream.write(129);
-            stream.write(bytes.length);
-            stream.write(bytes);
-
-            return true;
-        })); outputStream.flush();
+        ChessEvents.FrameSentEvent event = new ChessEvents.FrameSentEvent();
+        event.begin();
+        writeLock.lock();
+        try {
+            writeStartedNanos = System.nanoTime();
+            outputStream.write(Helper.constructCachedPacket(stream -> {
+                stream.write(129);
+                stream.write(bytes.length);
+                stream.write(bytes);
+
+                return true;
+            })); outputStream.flush();
+        } finally {
+            writeStartedNanos = 0;
+            writeLock.unlock();
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.remoteAddress = getRemoteAddress();
+            event.invitationCode = getInvitationCode();
+            event.payloadLength = bytes.length;
+            event.commit();
+        }
     }
 
     private String[] receiveMessage() throws IOException {
-        int type = inputStream.readUnsignedByte();
-        if (type != 129) throw new IOException("Unsupported message type");
-        int length = inputStream.readUnsignedByte();
-        length -= 128;
-        if (!(length >= 0 && length <= 125)) {
-            if (length == 126) {
-                int high = (inputStream.readUnsignedByte() & 0x00ff);
-                int low = inputStream.readUnsignedByte();
-
-                // converting these two unsigned bytes to an unsigned short
-                length = ((high & 0xFF) << 8) | (low & 0xFF);
-            } else {
-                // 32 bit and 64 bit lengths are unsupported to prevent DoS vulnerabilities
-                throw new IOException("Unsupported length");
+        while (true) {
+            int type = inputStream.readUnsignedByte();
+            lastHeardNanos = System.nanoTime();
+            if (type != 129 && type != PONG) {
+                throw new IOException("Unsupported message type");
+            }
+            // the first byte may take minutes to arrive (the player is thinking),
+            // so we start measuring only after receiving it
+            ChessEvents.FrameReceivedEvent event = new ChessEvents.FrameReceivedEvent();
+            event.begin();
+            int length = inputStream.readUnsignedByte();
+            length -= 128;
+            if (!(length >= 0 && length <= 125)) {
+                if (length == 126 && type != PONG) {
+                    int high = (inputStream.readUnsignedByte() & 0x00ff);
+                    int low = inputStream.readUnsignedByte();
+
+                    // converting these two unsigned bytes to an unsigned short
+                    length = ((high & 0xFF) << 8) | (low & 0xFF);
+                } else {
+                    // 32 bit and 64 bit lengths are unsupported to prevent DoS vulnerabilities
+                    throw new IOException("Unsupported length");
+                }
+            }
+            byte[] key = new byte[4];
+            if (inputStream.read(key) != key.length) {
+                throw new IOException("Could not receive the key");
             }
-        }
-        byte[] key = new byte[4];
-        if (inputStream.read(key) != key.length) {
-            throw new IOException("Could not receive the key");
-        }
 
-        byte[] payload = new byte[length];
-        if (inputStream.read(payload) != payload.length) {
-            throw new IOException("Could not receive the payload: " + payload.length);
+            byte[] payload = new byte[length];
+            if (inputStream.read(payload) != payload.length) {
+                throw new IOException("Could not receive the payload: " + payload.length);
+            }
+            // an answer to our ping, it has already refreshed lastHeardNanos
+            if (type == PONG) continue;
+
+            for (int i = 0; i < payload.length; i++) payload[i] ^= key[i & 3];
+            event.end();
+            if (event.shouldCommit()) {
+                event.remoteAddress = getRemoteAddress();
+                event.invitationCode = getInvitationCode();
+                event.payloadLength = length;
+                event.commit();
+            }
+
+            return (new String(payload, StandardCharsets.UTF_8)).split(" ");
         }
+    }
 
-        for (int i = 0; i < payload.length; i++) payload[i] ^= key[i & 3];
+    private boolean websocketInit() throws Exception {
+        ChessEvents.HandshakeEvent event = new ChessEvents.HandshakeEvent();
+        event.begin();
+        boolean succeeded = false;
+        try {
+            succeeded = websocketInit0();
 
-        return (new String(payload, StandardCharsets.UTF_8)).split(" ");
+            return succeeded;
+        } finally {
+            // failed TLS handshakes, timeouts and EOFs are recorded as well
+            event.end();
+            if (event.shouldCommit()) {
+                event.remoteAddress = getRemoteAddress();
+                event.succeeded = succeeded;
+                event.commit();
+            }
+        }
     }
 
-    private boolean websocketInit() throws Exception {
+    private boolean websocketInit0() throws Exception {
         inputStream = new DataInputStream(socket.getInputStream());
         outputStream = new DataOutputStream(socket.getOutputStream());
 
@@ -261,13 +346,66 @@ public class ClientHandler implements Runnable {
         outputStream.write(response); outputStream.flush(); return true;
     }
 
+    public void sendPing() throws IOException {
+        // never waits for another writer: if it is stuck writing to this
+        // socket, the peer is most likely dead and is going to be reaped
+        if (!writeLock.tryLock()) return;
+        try {
+            writeStartedNanos = System.nanoTime();
+            outputStream.write(PING_FRAME); outputStream.flush();
+        } finally {
+            writeStartedNanos = 0;
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return when the write which is currently in progress has started,
+     * or 0 if nothing is being written right now
+     */
+    public long getWriteStartedNanos() {
+        return writeStartedNanos;
+    }
+
+    public long getLastHeardNanos() {
+        return lastHeardNanos;
+    }
+
+    private String getRemoteAddress() {
+        return String.valueOf(socket.getRemoteSocketAddress());
+    }
+
+    private String getInvitationCode() {
+        GameRoom gameRoom = this.gameRoom;
+
+        return (gameRoom != null ? gameRoom.getInvitationCode() : null);
+    }
+
+    @Override
+    public String toString() {
+        return socket.toString();
+    }
+
+    /**
+     * Closes the connection of a peer which is considered dead. The reason
+     * is expected to be logged by the caller.
+     */
+    public void reap() {
+        reaped = true;
+        close();
+    }
+
     public boolean isClosed() {
-        return socket.isClosed();
+        return rawSocket.isClosed();
     }
 
+    /**
+     * Closes the TCP connection directly, without the TLS close_notify, so the
+     * call never waits for a writer blocked on this socket (it unblocks it).
+     */
     public void close() {
         try {
-            socket.close();
+            rawSocket.close();
         } catch (IOException ignored) {}
     }
 }
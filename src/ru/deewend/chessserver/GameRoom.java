@@ -4,6 +4,8 @@ import com.github.bhlangonijr.chesslib.Board;
 
 import java.io.IOException;
 import java.util.Random;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class GameRoom {
     @SuppressWarnings("FieldCanBeLocal")
@@ -12,6 +14,9 @@ public class GameRoom {
     private final String invitationCode;
     private final boolean hostColor; // true = white, false = black
     private final Board board;
+    // guards the board and the move order; not "synchronized" because
+    // the moves are relayed to the players while it is held
+    private final Lock lock = new ReentrantLock();
     private volatile ClientHandler opponentPlayerHandler;
     private volatile ClientHandler whoMakesAMove;
     private int waitingForTheOpponentTicks;
@@ -46,21 +51,45 @@ public class GameRoom {
         }
     }
 
-    public synchronized boolean checkAndDoMove(ClientHandler handler, String san) {
+    public boolean checkAndDoMove(ClientHandler handler, String san) {
+        lock.lock();
+        try {
+            return checkAndDoMove0(handler, san);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean checkAndDoMove0(ClientHandler handler, String san) {
         if (opponentPlayerHandler == null) throw new IllegalStateException();
         if (board.isMated()) throw new IllegalStateException();
         if (handler != whoMakesAMove) throw new IllegalArgumentException();
 
+        ChessEvents.MoveEvent event = new ChessEvents.MoveEvent();
+        event.begin();
+        long started = System.nanoTime();
         if (!board.doMove(san)) {
             throw new IllegalArgumentException();
         }
+        long validated = System.nanoTime();
 
         ClientHandler receiver = (whoMakesAMove ==
                 hostPlayerHandler ? opponentPlayerHandler : hostPlayerHandler);
         Helper.sendMessageIgnoreErrors(receiver, "san " + san);
+        long relayed = System.nanoTime();
 
         whoMakesAMove = receiver;
-        if (board.isMated()) {
+        boolean finished = board.isMated();
+        event.end();
+        if (event.shouldCommit()) {
+            event.invitationCode = invitationCode;
+            event.san = san;
+            event.validationTime = validated - started;
+            event.relayTime = relayed - validated;
+            event.finished = finished;
+            event.commit();
+        }
+        if (finished) {
             Helper.sendMessageIgnoreErrors(handler, "disconnect:you_won");
             handler.close();
             Helper.sendMessageIgnoreErrors(receiver, "disconnect:you_lost");
@@ -72,7 +101,31 @@ public class GameRoom {
         return false;
     }
 
-    public synchronized boolean connectSecond(ClientHandler second) throws IOException {
+    public boolean connectSecond(ClientHandler second) throws IOException {
+        lock.lock();
+        try {
+            ChessEvents.ConnectSecondEvent event = new ChessEvents.ConnectSecondEvent();
+            event.begin();
+            boolean succeeded = false;
+            try {
+                succeeded = connectSecond0(second);
+
+                return succeeded;
+            } finally {
+                // recorded even if sending "ok_starting" has failed
+                event.end();
+                if (event.shouldCommit()) {
+                    event.invitationCode = invitationCode;
+                    event.succeeded = succeeded;
+                    event.commit();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean connectSecond0(ClientHandler second) throws IOException {
         if (this.opponentPlayerHandler != null) return false;
 
         if (!hostColor) {
@@ -97,6 +150,10 @@ public class GameRoom {
             Helper.sendMessageIgnoreErrors(opponentPlayerHandler, message);
     }
 
+    public Lock getLock() {
+        return lock;
+    }
+
     public ClientHandler getHostPlayerHandler() {
         return hostPlayerHandler;
     }
@@ -0,0 +1,156 @@
+package ru.deewend.chessserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pings the players and reaps the ones which have been silent for too long
+ * (a NAT timeout, a crashed phone, etc.), so their threads, sockets and rooms
+ * are freed within seconds instead of waiting for the socket timeout.
+ * <p>
+ * A single thread serves all the connections. They are spread over a timing
+ * wheel with a slot per tick, so every tick visits only a small portion of
+ * the players and the pings are evenly spread over the interval instead of
+ * being sent in bursts.
+ * <p>
+ * The pings are written by a separate pinger thread. A peer which doesn't
+ * read (and thus has filled its receive and our send buffers) makes a write
+ * to it block, and if that happened in the thread checking the timeouts,
+ * nobody would be reaped anymore. Instead, the checking thread never writes
+ * and also reaps the peers whose writes have been blocked for longer than the
+ * interval; closing the TCP socket unblocks the stuck writer, be it the pinger,
+ * the Watchdog or the opponent's handler.
+ */
+public class Heartbeat implements Runnable {
+    public static final int TICK_MS = 250;
+    public static final int INTERVAL_S;
+    public static final int MAX_MISSED;
+
+    private final List<Set<ClientHandler>> wheel = new ArrayList<>();
+    private final AtomicInteger nextSlot = new AtomicInteger();
+    private final long maxSilenceNanos;
+    private final long maxWriteNanos;
+    private final BlockingQueue<ClientHandler> pingQueue = new LinkedBlockingQueue<>();
+    private final Set<ClientHandler> queuedForPing = ConcurrentHashMap.newKeySet();
+
+    static {
+        INTERVAL_S = Integer.parseInt(
+                System.getProperty("chessserver.heartbeatIntervalSeconds", "5"));
+        // 0 or less would reap every connection on its first visit
+        MAX_MISSED = Math.max(1, Integer.parseInt(
+                System.getProperty("chessserver.heartbeatMaxMissed", "3")));
+    }
+
+    public Heartbeat() {
+        int slotCount = Math.max(1, INTERVAL_S * 1000 / TICK_MS);
+        for (int i = 0; i < slotCount; i++) wheel.add(ConcurrentHashMap.newKeySet());
+
+        maxSilenceNanos = TimeUnit.SECONDS.toNanos((long) INTERVAL_S * MAX_MISSED);
+        maxWriteNanos = TimeUnit.SECONDS.toNanos(INTERVAL_S);
+    }
+
+    public static boolean isEnabled() {
+        return INTERVAL_S > 0;
+    }
+
+    /**
+     * @return the slot to pass to unregister(), or -1 if heartbeats are disabled
+     */
+    public int register(ClientHandler handler) {
+        if (!isEnabled()) return -1;
+
+        int slot = Math.floorMod(nextSlot.getAndIncrement(), wheel.size());
+        wheel.get(slot).add(handler);
+
+        return slot;
+    }
+
+    public void unregister(ClientHandler handler, int slot) {
+        wheel.get(slot).remove(handler);
+    }
+
+    @Override
+    @SuppressWarnings({"BusyWait", "finally", "InfiniteLoopStatement"})
+    public void run() {
+        try {
+            int slot = 0;
+            while (true) {
+                long started = System.currentTimeMillis();
+                visit(wheel.get(slot));
+                slot = (slot + 1) % wheel.size();
+
+                long delta = System.currentTimeMillis() - started;
+                Thread.sleep(Math.max(1, TICK_MS - delta));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            e.printStackTrace();
+        } finally {
+            System.err.println("The Heartbeat thread has died. The application can't " +
+                    "continue operate normally, thus the server will be terminated");
+
+            System.exit(-1);
+        }
+    }
+
+    @SuppressWarnings({"finally", "InfiniteLoopStatement"})
+    public void runPinger() {
+        try {
+            while (true) {
+                ClientHandler handler = pingQueue.take();
+                queuedForPing.remove(handler);
+                if (handler.isClosed()) continue;
+
+                try {
+                    handler.sendPing();
+                } catch (Throwable t) {
+                    handler.close();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            e.printStackTrace();
+        } finally {
+            System.err.println("The Heartbeat Pinger thread has died. The application " +
+                    "can't continue operate normally, thus the server will be terminated");
+
+            System.exit(-1);
+        }
+    }
+
+    private void visit(Set<ClientHandler> handlers) {
+        long now = System.nanoTime();
+        for (ClientHandler handler : handlers) {
+            if (handler.isClosed()) continue; // will be unregistered by its thread
+
+            if (now - handler.getLastHeardNanos() > maxSilenceNanos) {
+                Helper.logf("A player (%s) missed %d heartbeats, closing the connection",
+                        handler, MAX_MISSED);
+                // the handler's thread wakes up with an exception and
+                // notifies the opponent, as if the player disconnected
+                handler.reap();
+
+                continue;
+            }
+            long writeStarted = handler.getWriteStartedNanos();
+            if (writeStarted != 0 && now - writeStarted > maxWriteNanos) {
+                Helper.logf("A player (%s) doesn't read the data we send, " +
+                        "closing the connection", handler);
+                handler.reap();
+
+                continue;
+            }
+
+            // a handler is queued only once, even if the pinger is stuck
+            if (queuedForPing.add(handler)) pingQueue.add(handler);
+        }
+    }
+}
@@ -2,24 +2,22 @@ package ru.deewend.chessserver;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
-import java.lang.reflect.Method;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Helper {
     public interface Providable<T> {
         boolean provide(T object) throws Exception;
     }
 
-    public static final boolean USE_PLATFORM_THREADS;
     private static final DateFormat FORMAT =
             new SimpleDateFormat("[HH:mm:ss dd.MM.yyyy] ");
-
-    static {
-        USE_PLATFORM_THREADS = "true".equalsIgnoreCase(
-                System.getProperty("chessserver.usePlatformThreads"));
-    }
+    // not a monitor: virtual threads blocked on System.out inside
+    // a synchronized method would pin their carriers
+    private static final Lock LOG_LOCK = new ReentrantLock();
 
     private Helper() {
     }
@@ -28,46 +26,17 @@ public class Helper {
         log(String.format(format, args));
     }
 
-    public static synchronized void log(String message) {
-        System.out.println(FORMAT.format(new Date()) + message);
+    public static void log(String message) {
+        LOG_LOCK.lock();
+        try {
+            System.out.println(FORMAT.format(new Date()) + message);
+        } finally {
+            LOG_LOCK.unlock();
+        }
     }
 
     public static void newThread(String name, Runnable task) {
-        if (USE_PLATFORM_THREADS) {
-            Thread thread = new Thread(task);
-            thread.setName(name);
-            thread.setDaemon(true);
-            thread.start();
-        } else {
-            try {
-                Method ofVirtual = Thread.class.getDeclaredMethod("ofVirtual");
-                ofVirtual.setAccessible(true);
-                Object virtualBuilder = ofVirtual.invoke(null);
-                Method nameSet = virtualBuilder.getClass()
-                        .getDeclaredMethod("name", String.class);
-                nameSet.setAccessible(true);
-                virtualBuilder = nameSet.invoke(virtualBuilder, name);
-                Method start = virtualBuilder.getClass()
-                        .getDeclaredMethod("start", Runnable.class);
-                start.setAccessible(true);
-                start.invoke(virtualBuilder, task);
-            } catch (Exception e) {
-                System.err.println("Failed to start a virtual thread (name=\"" + name + "\")");
-                System.err.println("Are you running Java 19 (with enabled preview " +
-                        "features) or later?");
-                System.err.println("If you wish to use classic platform threads, " +
-                        "please re-run the server with the following JVM flag: " +
-                        "-Dchessserver.usePlatformThreads=true");
-                System.err.println("If you wish to enable preview features, please " +
-                        "re-run the server with the following JVM flag: --enable-preview");
-                System.err.println("Also, for virtual threads support, please make sure " +
-                        "you include this flag as well: " +
-                        "--add-opens java.base/java.lang=ALL-UNNAMED");
-                System.err.println("The exception will be wrapped into a RuntimeException");
-
-                throw new RuntimeException(e);
-            }
-        }
+        TaskExecutor.getInstance().execute(name, task);
     }
 
     public static boolean checkInvitationCode(String code) {
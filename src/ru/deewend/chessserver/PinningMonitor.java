@@ -0,0 +1,99 @@
+package ru.deewend.chessserver;
+
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordedThread;
+import jdk.jfr.consumer.RecordingStream;
+
+import java.time.Duration;
+
+/**
+ * Reports virtual threads which block while being pinned to their carrier
+ * (for example, doing socket I/O inside a synchronized block). Such a thread
+ * holds the carrier hostage, and if it happens often, all the players served
+ * by the same carrier experience lags.
+ */
+public class PinningMonitor {
+    private static final String EVENT_NAME = "jdk.VirtualThreadPinned";
+
+    public static final boolean ENABLED;
+    public static final int THRESHOLD_MS;
+    public static final String TRACE_PINNED_THREADS;
+
+    static {
+        ENABLED = !"false".equalsIgnoreCase(
+                System.getProperty("chessserver.pinningCheck"));
+        THRESHOLD_MS = Integer.parseInt(
+                System.getProperty("chessserver.pinningThresholdMs", "20"));
+        TRACE_PINNED_THREADS = System.getProperty("chessserver.tracePinnedThreads");
+    }
+
+    private PinningMonitor() {
+    }
+
+    /**
+     * Should be called before the first virtual thread is created.
+     */
+    public static void start() {
+        if (TRACE_PINNED_THREADS != null &&
+                System.getProperty("jdk.tracePinnedThreads") == null
+        ) {
+            // "short" or "full", makes the JDK print the stack trace of the pinned
+            // thread to System.out on older JDKs where the JFR event may be missing
+            System.setProperty("jdk.tracePinnedThreads", TRACE_PINNED_THREADS);
+        }
+        if (!ENABLED) return;
+
+        try {
+            if (!FlightRecorder.isAvailable() || !isEventSupported()) {
+                Helper.log("Pinning self-check: the " + EVENT_NAME + " JFR event is " +
+                        "not supported by this JVM, pinned virtual threads won't be reported");
+
+                return;
+            }
+
+            RecordingStream stream = new RecordingStream();
+            stream.enable(EVENT_NAME)
+                    .withThreshold(Duration.ofMillis(THRESHOLD_MS))
+                    .withStackTrace();
+            stream.onEvent(EVENT_NAME, event -> {
+                RecordedThread thread = event.getThread();
+                RecordedStackTrace stackTrace = event.getStackTrace();
+                String where = "unknown location";
+                if (stackTrace != null) {
+                    for (RecordedFrame frame : stackTrace.getFrames()) {
+                        if (!frame.isJavaFrame()) continue;
+
+                        String current = frame.getMethod().getType().getName() + "." +
+                                frame.getMethod().getName() + ":" + frame.getLineNumber();
+                        if (where.equals("unknown location")) where = current;
+                        // the first frame which belongs to us is the most interesting
+                        if (current.startsWith("ru.deewend.")) {
+                            where = current; break;
+                        }
+                    }
+                }
+
+                Helper.logf("A virtual thread (%s) was pinned for %d ms at %s",
+                        (thread != null ? thread.getJavaName() : "?"),
+                        event.getDuration().toMillis(), where);
+            });
+            stream.startAsync();
+
+            Helper.log("Pinning self-check: reporting virtual threads pinned for " +
+                    "longer than " + THRESHOLD_MS + " ms");
+        } catch (Throwable t) {
+            Helper.log("Pinning self-check: failed to start (" + t + ")");
+        }
+    }
+
+    private static boolean isEventSupported() {
+        for (EventType type : FlightRecorder.getFlightRecorder().getEventTypes()) {
+            if (type.getName().equals(EVENT_NAME)) return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,153 @@
+package ru.deewend.chessserver;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public abstract class TaskExecutor {
+    public static final String MODE_VIRTUAL = "virtual";
+    public static final String MODE_PLATFORM = "platform";
+    public static final String MODE_POOL = "pool";
+
+    public static final String MODE;
+    public static final int CARRIER_THREADS;
+    public static final int POOL_SIZE;
+    private static final TaskExecutor INSTANCE;
+
+    static {
+        String mode = System.getProperty("chessserver.executor");
+        if (mode == null) {
+            // kept for compatibility with the older startup scripts
+            boolean usePlatformThreads = "true".equalsIgnoreCase(
+                    System.getProperty("chessserver.usePlatformThreads"));
+
+            mode = (usePlatformThreads ? MODE_PLATFORM : MODE_VIRTUAL);
+        }
+        MODE = mode.toLowerCase();
+        CARRIER_THREADS = Integer.parseInt(
+                System.getProperty("chessserver.carrierThreads", "0"));
+        // one handler per (possibly soft-kicked) player, the Watchdog, the
+        // Heartbeat with its pinger and the acceptors (plain and TLS ones)
+        POOL_SIZE = Integer.parseInt(System.getProperty("chessserver.poolSize",
+                String.valueOf(ChessServer.MAX_ONLINE_PLAYER_COUNT_SOFT_KICK + 3 +
+                        2 * ChessServer.ACCEPTOR_THREADS)));
+
+        switch (MODE) {
+            case MODE_VIRTUAL:
+                INSTANCE = new VirtualThreadExecutor();
+                break;
+            case MODE_PLATFORM:
+                INSTANCE = new PlatformThreadExecutor();
+                break;
+            case MODE_POOL:
+                INSTANCE = new PoolExecutor();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown executor: \"" + MODE + "\" " +
+                        "(expected one of: virtual, platform, pool)");
+        }
+        Helper.log("Using the \"" + MODE + "\" executor");
+    }
+
+    TaskExecutor() {
+    }
+
+    public static TaskExecutor getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts the task asynchronously.
+     *
+     * @throws RejectedExecutionException if the executor is bounded and is
+     * already running as many tasks as it can
+     */
+    public abstract void execute(String name, Runnable task);
+
+    private static class VirtualThreadExecutor extends TaskExecutor {
+        private final ThreadFactory factory;
+
+        VirtualThreadExecutor() {
+            if (CARRIER_THREADS > 0) {
+                // must be set before the first virtual thread is created, since the
+                // default scheduler reads it only once
+                System.setProperty("jdk.virtualThreadScheduler.parallelism",
+                        String.valueOf(CARRIER_THREADS));
+            }
+
+            try {
+                // Thread.Builder.OfVirtual is resolved through the public interface, so
+                // neither setAccessible() nor --add-opens are required. The resulting
+                // factory is thread-safe and is used directly later, without any
+                // reflection on the connection path
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+                Class<?> baseBuilderClass = Class.forName("java.lang.Thread$Builder");
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                MethodHandle ofVirtual = lookup.findStatic(Thread.class,
+                        "ofVirtual", MethodType.methodType(builderClass));
+                MethodHandle factory = lookup.findVirtual(baseBuilderClass,
+                        "factory", MethodType.methodType(ThreadFactory.class));
+
+                this.factory = (ThreadFactory) factory.invoke(ofVirtual.invoke());
+            } catch (Throwable t) {
+                System.err.println("Failed to initialize virtual threads");
+                System.err.println("Are you running Java 19 (with enabled preview " +
+                        "features) or later?");
+                System.err.println("If you wish to use classic platform threads, " +
+                        "please re-run the server with the following JVM flag: " +
+                        "-Dchessserver.executor=platform (or =pool)");
+                System.err.println("If you wish to enable preview features, please " +
+                        "re-run the server with the following JVM flag: --enable-preview");
+                System.err.println("The exception will be wrapped into a RuntimeException");
+
+                throw new RuntimeException(t);
+            }
+            PinningMonitor.start();
+        }
+
+        @Override
+        public void execute(String name, Runnable task) {
+            Thread thread = factory.newThread(task);
+            thread.setName(name);
+            thread.start();
+        }
+    }
+
+    private static class PlatformThreadExecutor extends TaskExecutor {
+        @Override
+        public void execute(String name, Runnable task) {
+            Thread thread = new Thread(task);
+            thread.setName(name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static class PoolExecutor extends TaskExecutor {
+        private final ThreadPoolExecutor pool;
+
+        PoolExecutor() {
+            pool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60L, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), task -> {
+                        Thread thread = new Thread(task);
+                        thread.setDaemon(true);
+
+                        return thread;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        public void execute(String name, Runnable task) {
+            pool.execute(() -> {
+                Thread.currentThread().setName(name);
+                task.run();
+            });
+        }
+    }
+}
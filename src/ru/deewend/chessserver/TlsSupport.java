@@ -0,0 +1,126 @@
+package ru.deewend.chessserver;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.KeyStore;
+
+/**
+ * In-process TLS termination, so browsers on HTTPS pages can connect via
+ * wss:// without a proxy in front of the server.
+ * <p>
+ * Enabled by setting chessserver.tlsPort (if it equals chessserver.port,
+ * the main port itself becomes TLS-only) and chessserver.tls.keyStore.
+ * For a local test, a self-signed certificate can be generated with:
+ * <pre>
+ * keytool -genkeypair -alias chessserver -keyalg EC -groupname secp256r1 \
+ *     -validity 365 -dname CN=localhost -ext san=dns:localhost,ip:127.0.0.1 \
+ *     -storetype PKCS12 -keystore chessserver.p12 -storepass changeit
+ *
+ * java -Dchessserver.tlsPort=5558 -Dchessserver.tls.keyStore=chessserver.p12 \
+ *     -Dchessserver.tls.keyStorePassword=changeit -jar ChessServer.jar
+ * </pre>
+ * after which https://localhost:5558 should be opened once in the browser
+ * to trust the certificate, and wss://localhost:5558 will work.
+ * <p>
+ * The server uses blocking sockets, so TLS is done by SSLSocket (which keeps
+ * its own record buffers per connection) rather than by SSLEngine. The
+ * handshake happens lazily on the first read, i.e. in the handler thread,
+ * never blocking the acceptor.
+ * <p>
+ * The connections are accepted as plain TCP sockets and SSLSocket is layered
+ * over them. Closing an SSLSocket sends close_notify under the same lock a
+ * blocked writer holds, so it would hang if the peer doesn't read; closing
+ * the raw socket instead always unblocks everyone (see ClientHandler.close()).
+ */
+public class TlsSupport {
+    public static final int TLS_PORT;
+    public static final String KEY_STORE;
+    public static final String KEY_STORE_TYPE;
+    public static final String KEY_STORE_PASSWORD;
+    public static final String KEY_PASSWORD;
+    public static final int SESSION_CACHE_SIZE;
+    public static final int SESSION_TIMEOUT_S;
+    private static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+    // shared by all the connections, so the session cache is shared too
+    private static SSLContext context;
+
+    static {
+        TLS_PORT = Integer.parseInt(
+                System.getProperty("chessserver.tlsPort", "-1"));
+        KEY_STORE = System.getProperty("chessserver.tls.keyStore");
+        KEY_STORE_TYPE = System.getProperty("chessserver.tls.keyStoreType", "PKCS12");
+        KEY_STORE_PASSWORD = System.getProperty("chessserver.tls.keyStorePassword", "");
+        KEY_PASSWORD = System.getProperty("chessserver.tls.keyPassword", KEY_STORE_PASSWORD);
+        SESSION_CACHE_SIZE = Integer.parseInt(
+                System.getProperty("chessserver.tls.sessionCacheSize", "20000"));
+        SESSION_TIMEOUT_S = Integer.parseInt(
+                System.getProperty("chessserver.tls.sessionTimeoutSeconds", "86400"));
+    }
+
+    private TlsSupport() {
+    }
+
+    public static boolean isEnabled() {
+        return TLS_PORT >= 0;
+    }
+
+    /**
+     * Loads the key store. Should be called once at startup, before any
+     * connection is accepted.
+     */
+    public static synchronized void init() throws IOException {
+        if (context == null) context = createContext();
+    }
+
+    /**
+     * Layers a server mode SSLSocket over an accepted connection. All the
+     * sockets share the same SSLContext, and thus the same session cache.
+     */
+    public static Socket wrap(Socket rawSocket) throws IOException {
+        SSLSocket socket = (SSLSocket) context.getSocketFactory()
+                .createSocket(rawSocket, null, true);
+        socket.setEnabledProtocols(PROTOCOLS);
+        socket.setNeedClientAuth(false);
+
+        return socket;
+    }
+
+    private static SSLContext createContext() throws IOException {
+        if (KEY_STORE == null) {
+            throw new IllegalStateException("TLS is enabled, but " +
+                    "chessserver.tls.keyStore is not specified");
+        }
+        SSLContext sslContext;
+        try {
+            KeyStore keyStore = KeyStore.getInstance(KEY_STORE_TYPE);
+            try (InputStream stream = new FileInputStream(KEY_STORE)) {
+                keyStore.load(stream, KEY_STORE_PASSWORD.toCharArray());
+            }
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory
+                    .getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, KEY_PASSWORD.toCharArray());
+
+            sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to initialize TLS", e);
+        }
+
+        // stateless session tickets are enabled by default since JDK 13 (see
+        // jdk.tls.server.enableSessionTicketExtension), this cache serves the
+        // clients which don't support them
+        SSLSessionContext sessionContext = sslContext.getServerSessionContext();
+        sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessionContext.setSessionTimeout(SESSION_TIMEOUT_S);
+
+        return sslContext;
+    }
+}